@@ -0,0 +1,124 @@
+package net.vandenberge.metrics.kairosdb;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the host name of a KairosDB server to all of its addresses, and
+ * re-resolves it once the time-to-live has expired, so clients follow servers
+ * that move behind a DNS name. The address that was last connected to is
+ * returned first. Note that the JVM caches lookups as well, for the duration
+ * of the {@code networkaddress.cache.ttl} security property.
+ */
+class AddressResolver {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AddressResolver.class);
+
+	private final String host;
+	private long ttlNanos;
+	private InetAddress[] addresses;
+	private long expiry;
+	private InetAddress preferred;
+	private boolean justLookedUp;
+
+	/**
+	 * @param address
+	 *            the address of the server; if it is resolved, its address is
+	 *            used until the time-to-live expires
+	 * @param ttlNanos
+	 *            the time-to-live of resolved addresses
+	 */
+	AddressResolver(InetSocketAddress address, long ttlNanos) {
+		this.host = address.getHostString();
+		this.ttlNanos = ttlNanos;
+		if (!address.isUnresolved()) {
+			this.addresses = new InetAddress[] { address.getAddress() };
+			this.expiry = System.nanoTime() + ttlNanos;
+		}
+	}
+
+	synchronized void setTtl(long ttlNanos) {
+		this.expiry += ttlNanos - this.ttlNanos;
+		this.ttlNanos = ttlNanos;
+	}
+
+	/**
+	 * Returns the addresses of the server, preferred address first. If the
+	 * host name cannot be resolved, the previously resolved addresses are
+	 * returned.
+	 *
+	 * @throws UnknownHostException
+	 *             if the host name could not be resolved and there are no
+	 *             previously resolved addresses
+	 */
+	synchronized InetAddress[] resolve() throws UnknownHostException {
+		justLookedUp = false;
+		if (addresses == null || System.nanoTime() - expiry >= 0) {
+			try {
+				lookupNow();
+			} catch (UnknownHostException e) {
+				if (addresses == null) {
+					throw e;
+				}
+				LOGGER.warn("Unable to resolve {}, using previous addresses {}", host, Arrays.toString(addresses));
+			}
+		}
+		InetAddress[] ordered = addresses.clone();
+		for (int i = 1; i < ordered.length; i++) {
+			if (ordered[i].equals(preferred)) {
+				ordered[i] = ordered[0];
+				ordered[0] = preferred;
+				break;
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * Records that a connection to the given address succeeded.
+	 */
+	synchronized void connected(InetAddress address) {
+		this.preferred = address;
+	}
+
+	/**
+	 * Called when none of the given addresses, as returned by
+	 * {@link #resolve()}, accepted a connection. Unless they were just looked
+	 * up, resolves the host name again right away, so a server that moved is
+	 * found without waiting for the time-to-live to expire.
+	 *
+	 * @return the newly resolved addresses that were not tried yet; empty if
+	 *         there are none or the host name could not be resolved
+	 */
+	synchronized InetAddress[] refresh(InetAddress[] tried) {
+		if (justLookedUp) {
+			return new InetAddress[0];
+		}
+		try {
+			lookupNow();
+		} catch (UnknownHostException e) {
+			LOGGER.debug("Unable to resolve {}", host);
+			return new InetAddress[0];
+		}
+		List<InetAddress> untried = new ArrayList<InetAddress>(Arrays.asList(addresses));
+		untried.removeAll(Arrays.asList(tried));
+		return untried.toArray(new InetAddress[untried.size()]);
+	}
+
+	private void lookupNow() throws UnknownHostException {
+		addresses = lookup(host);
+		expiry = System.nanoTime() + ttlNanos;
+		justLookedUp = true;
+	}
+
+	InetAddress[] lookup(String host) throws UnknownHostException {
+		return InetAddress.getAllByName(host);
+	}
+}
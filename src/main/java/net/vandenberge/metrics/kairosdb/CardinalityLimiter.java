@@ -0,0 +1,272 @@
+package net.vandenberge.metrics.kairosdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Caps the number of distinct metrics a reporter sends to KairosDB. A metric
+ * is admitted or rejected as a whole, by its name in the registry, so it is
+ * never reported half. Every admitted name is remembered as a 64-bit hash, so
+ * memory use is bounded by the limits no matter how many distinct names are
+ * offered: names that no limit applies to are not remembered at all. Metrics
+ * beyond a limit are either dropped or folded into an "other" bucket,
+ * depending on the {@link OverflowPolicy}.
+ * <p>
+ * Prefix limits are matched against the metric name as registered, on a name
+ * segment boundary: the prefix {@code users} applies to {@code users} and
+ * {@code users.1}, but not to {@code usersettings}. The longest matching
+ * prefix wins. Tags are fixed per reporter, so the name identifies a metric's
+ * series.
+ * <p>
+ * The limiter is used in reports: {@link #startReport()} is called when a
+ * report starts, {@link #admit(String)} once for each metric in it, and
+ * {@link #endReport()} once it completed. A metric that was not offered during
+ * a completed report is forgotten, so metrics removed from the registry free
+ * their slot for new ones.
+ */
+public class CardinalityLimiter {
+
+	/**
+	 * What to do with a metric that would exceed a limit.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The metric is not reported.
+		 */
+		DROP,
+
+		/**
+		 * The metric is reported as part of an "other" bucket instead.
+		 */
+		AGGREGATE
+	}
+
+	static final String OTHER = "other";
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final int maxMetrics;
+	private final String[] prefixes;
+	private final int[] prefixLimits;
+	private final int[] prefixCounts;
+	private final OverflowPolicy policy;
+
+	private long[] hashes = new long[INITIAL_CAPACITY];
+	private int[] prefixOf = new int[INITIAL_CAPACITY];
+	private int[] seenIn = new int[INITIAL_CAPACITY];
+	private int size;
+	private int report;
+	private int rejections;
+	private int lastRejections;
+
+	/**
+	 * Creates a new limiter.
+	 *
+	 * @param maxMetrics
+	 *            the maximum number of distinct metrics in total, or
+	 *            {@link Integer#MAX_VALUE} for no global limit
+	 * @param prefixLimits
+	 *            the maximum number of distinct metrics per name prefix
+	 * @param policy
+	 *            what to do with metrics that exceed a limit
+	 */
+	public CardinalityLimiter(int maxMetrics, Map<String, Integer> prefixLimits, OverflowPolicy policy) {
+		if (maxMetrics < 0) {
+			throw new IllegalArgumentException("maxMetrics must not be negative");
+		}
+		this.maxMetrics = maxMetrics;
+		this.policy = policy;
+
+		List<Entry<String, Integer>> entries = new ArrayList<Entry<String, Integer>>(prefixLimits.entrySet());
+		// Longest prefix first, so the first match is the most specific one.
+		Collections.sort(entries, new Comparator<Entry<String, Integer>>() {
+			@Override
+			public int compare(Entry<String, Integer> a, Entry<String, Integer> b) {
+				return b.getKey().length() - a.getKey().length();
+			}
+		});
+		this.prefixes = new String[entries.size()];
+		this.prefixLimits = new int[entries.size()];
+		this.prefixCounts = new int[entries.size()];
+		for (int i = 0; i < entries.size(); i++) {
+			this.prefixes[i] = entries.get(i).getKey();
+			this.prefixLimits[i] = entries.get(i).getValue();
+		}
+	}
+
+	/**
+	 * Decides whether the given metric may be reported.
+	 *
+	 * @param name
+	 *            the name of the metric
+	 * @return {@code name} itself if it may be reported as is, the name of the
+	 *         "other" bucket it must be aggregated into, or {@code null} if it
+	 *         must be dropped
+	 */
+	public synchronized String admit(String name) {
+		int prefix = matchPrefix(name);
+		if (prefix < 0 && maxMetrics == Integer.MAX_VALUE) {
+			// No limit applies, so there is no need to remember the name.
+			return name;
+		}
+		long hash = hash(name);
+		int slot = indexOf(hash);
+		if (slot >= 0) {
+			seenIn[slot] = report;
+			return name;
+		}
+		boolean global = size >= maxMetrics;
+		if (global || (prefix >= 0 && prefixCounts[prefix] >= prefixLimits[prefix])) {
+			rejections++;
+			if (policy == OverflowPolicy.DROP) {
+				return null;
+			}
+			return global ? OTHER : bucket(prefixes[prefix]);
+		}
+		add(hash, prefix);
+		return name;
+	}
+
+	/**
+	 * Starts a report. A report that does not complete, because reporting
+	 * failed, is discarded when the next one starts.
+	 */
+	public synchronized void startReport() {
+		report++;
+		rejections = 0;
+	}
+
+	/**
+	 * Completes the current report, and forgets the metrics that were not
+	 * offered to {@link #admit(String)} during it.
+	 */
+	public synchronized void endReport() {
+		lastRejections = rejections;
+		int live = 0;
+		for (int i = 0; i < hashes.length; i++) {
+			if (hashes[i] != 0 && seenIn[i] == report) {
+				live++;
+			}
+		}
+		if (live < size) {
+			rehash(hashes.length, true);
+		}
+	}
+
+	/**
+	 * Returns the number of distinct metrics that a limit applies to and that
+	 * have been admitted.
+	 */
+	public synchronized int getAdmittedCount() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of distinct metrics that were rejected in the last
+	 * completed report because they exceeded a limit.
+	 */
+	public synchronized int getRejectionCount() {
+		return lastRejections;
+	}
+
+	private static String bucket(String prefix) {
+		return prefix.endsWith(".") ? prefix + OTHER : MetricRegistry.name(prefix, OTHER);
+	}
+
+	private int matchPrefix(String name) {
+		for (int i = 0; i < prefixes.length; i++) {
+			if (matches(name, prefixes[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns whether the given name is the given prefix, or starts with it
+	 * followed by a period.
+	 */
+	private static boolean matches(String name, String prefix) {
+		if (!name.startsWith(prefix)) {
+			return false;
+		}
+		return name.length() == prefix.length() || prefix.endsWith(".") || name.charAt(prefix.length()) == '.';
+	}
+
+	private int indexOf(long hash) {
+		int mask = hashes.length - 1;
+		for (int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+			if (hashes[i] == hash) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void add(long hash, int prefix) {
+		if (size >= hashes.length >>> 1) {
+			rehash(hashes.length * 2, false);
+		}
+		insert(hash, prefix, report);
+	}
+
+	/**
+	 * Rebuilds the table with the given capacity. If {@code expire} is set,
+	 * only the metrics offered during the current report are kept.
+	 */
+	private void rehash(int capacity, boolean expire) {
+		long[] oldHashes = hashes;
+		int[] oldPrefixOf = prefixOf;
+		int[] oldSeenIn = seenIn;
+		hashes = new long[capacity];
+		prefixOf = new int[capacity];
+		seenIn = new int[capacity];
+		size = 0;
+		Arrays.fill(prefixCounts, 0);
+		for (int i = 0; i < oldHashes.length; i++) {
+			if (oldHashes[i] != 0 && (!expire || oldSeenIn[i] == report)) {
+				insert(oldHashes[i], oldPrefixOf[i], oldSeenIn[i]);
+			}
+		}
+	}
+
+	private void insert(long hash, int prefix, int seen) {
+		int mask = hashes.length - 1;
+		int i = (int) hash & mask;
+		while (hashes[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		hashes[i] = hash;
+		prefixOf[i] = prefix;
+		seenIn[i] = seen;
+		size++;
+		if (prefix >= 0) {
+			prefixCounts[prefix]++;
+		}
+	}
+
+	/**
+	 * 64-bit FNV-1a hash with a final mix, never returning 0 (the empty slot
+	 * marker).
+	 */
+	static long hash(String s) {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+}
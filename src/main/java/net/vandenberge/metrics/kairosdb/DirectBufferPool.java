@@ -0,0 +1,46 @@
+package net.vandenberge.metrics.kairosdb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of direct {@link ByteBuffer}s of a fixed size. Direct buffers are
+ * expensive to allocate and are only reclaimed by the garbage collector, so
+ * they are recycled instead of discarded. Not thread-safe; each client owns
+ * its own pool.
+ */
+class DirectBufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * @param bufferSize
+	 *            the capacity of each buffer in bytes
+	 * @param maxPooled
+	 *            the maximum number of idle buffers kept in the pool
+	 */
+	DirectBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Returns a cleared buffer, allocating one if the pool is empty.
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		return buffer == null ? ByteBuffer.allocateDirect(bufferSize) : buffer;
+	}
+
+	/**
+	 * Returns the given buffer to the pool.
+	 */
+	void release(ByteBuffer buffer) {
+		buffer.clear();
+		if (buffers.size() < maxPooled) {
+			buffers.push(buffer);
+		}
+	}
+}
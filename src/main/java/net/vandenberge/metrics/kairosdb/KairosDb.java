@@ -3,30 +3,41 @@ package net.vandenberge.metrics.kairosdb;
 import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.charset.Charset;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.SocketFactory;
 
+/**
+ * A client for the telnet protocol of KairosDB. Instances are not thread-safe;
+ * use a {@link KairosDbSink} to send from multiple threads.
+ */
 public class KairosDb implements Closeable {
 
-	private static final Pattern WHITESPACE = Pattern.compile("[\\s]+");
-	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final long DEFAULT_ADDRESS_TTL_NANOS = TimeUnit.MINUTES.toNanos(1);
+	private static final int DEFAULT_MULTI_ADDRESS_CONNECT_TIMEOUT_MILLIS = 5000;
 
 	private final InetSocketAddress address;
+	private final AddressResolver resolver;
 	private final SocketFactory socketFactory;
 	private final Charset charset;
 
+	private int connectTimeoutMillis;
+	private long connectedAt;
 	private Socket socket;
 	private Writer writer;
-	private Map<String, String> tags = new LinkedHashMap<String, String>();
+	private String encodedTags = "";
+	private final StringBuilder line = new StringBuilder(128);
+	private char[] chars = new char[128];
 
 	/**
 	 * Creates a new KairosDB client which connects to the given address using
@@ -64,13 +75,50 @@ public class KairosDb implements Closeable {
 	 *            the character set used by the server
 	 */
 	public KairosDb(InetSocketAddress address, SocketFactory socketFactory, Charset charset) {
+		this(address, socketFactory, charset, new AddressResolver(address, DEFAULT_ADDRESS_TTL_NANOS));
+	}
+
+	KairosDb(InetSocketAddress address, SocketFactory socketFactory, Charset charset, AddressResolver resolver) {
 		this.address = address;
+		this.resolver = resolver;
 		this.socketFactory = socketFactory;
 		this.charset = charset;
 	}
 
 	/**
-	 * Connects to the KairosDB server.
+	 * Sets how long the resolved addresses of the server's host name are used
+	 * before it is resolved again. Defaults to one minute.
+	 * 
+	 * @param ttl
+	 *            the time-to-live of resolved addresses
+	 * @param unit
+	 *            the unit of {@code ttl}
+	 */
+	public void setAddressTtl(long ttl, TimeUnit unit) {
+		resolver.setTtl(unit.toNanos(ttl));
+	}
+
+	/**
+	 * Sets how long to wait for each address of the server to accept a
+	 * connection. Defaults to 0, which waits as long as the operating system
+	 * does if the host name resolves to a single address, and five seconds per
+	 * address if it resolves to more, so that an unreachable address does not
+	 * hold up the others.
+	 * 
+	 * @param timeout
+	 *            the connect timeout
+	 * @param unit
+	 *            the unit of {@code timeout}
+	 */
+	public void setConnectTimeout(long timeout, TimeUnit unit) {
+		this.connectTimeoutMillis = (int) Math.min(unit.toMillis(timeout), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Connects to the KairosDB server, trying each address its host name
+	 * resolves to until one accepts the connection. If none does, and the
+	 * addresses came from the cache, the host name is resolved again and the
+	 * new addresses are tried as well.
 	 * 
 	 * @throws IllegalStateException
 	 *             if the client is already connected
@@ -78,12 +126,134 @@ public class KairosDb implements Closeable {
 	 *             if there is an error connecting
 	 */
 	public void connect() throws IllegalStateException, IOException {
-		if (socket != null) {
+		if (isConnected()) {
 			throw new IllegalStateException("Already connected");
 		}
 
-		this.socket = socketFactory.createSocket(address.getAddress(), address.getPort());
-		this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), charset));
+		InetAddress[] tried = resolver.resolve();
+		IOException failure = connectToAny(tried);
+		if (failure == null) {
+			return;
+		}
+		InetAddress[] fresh = resolver.refresh(tried);
+		if (fresh.length > 0 && connectToAny(fresh) == null) {
+			return;
+		}
+		throw failure;
+	}
+
+	/**
+	 * Connects to the first of the given addresses that accepts the
+	 * connection.
+	 * 
+	 * @return {@code null} if connected, or the error of the last attempt
+	 */
+	private IOException connectToAny(InetAddress[] candidates) {
+		int timeoutMillis = connectTimeoutMillis;
+		if (timeoutMillis == 0 && candidates.length > 1) {
+			timeoutMillis = DEFAULT_MULTI_ADDRESS_CONNECT_TIMEOUT_MILLIS;
+		}
+		IOException failure = null;
+		for (InetAddress candidate : candidates) {
+			try {
+				connect(candidate, address.getPort(), timeoutMillis);
+				resolver.connected(candidate);
+				connectedAt = System.nanoTime();
+				return null;
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		return failure;
+	}
+
+	/**
+	 * Returns the value of {@link System#nanoTime()} when the current
+	 * connection was made.
+	 */
+	long getConnectedAt() {
+		return connectedAt;
+	}
+
+	/**
+	 * Connects to the given address of the KairosDB server, waiting at most the
+	 * given time, or as long as the operating system does if it is 0.
+	 */
+	void connect(InetAddress address, int port, int timeoutMillis) throws IOException {
+		Socket socket;
+		if (timeoutMillis > 0) {
+			socket = socketFactory.createSocket();
+			try {
+				socket.connect(new InetSocketAddress(address, port), timeoutMillis);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		} else {
+			socket = socketFactory.createSocket(address, port);
+		}
+		try {
+			this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), charset));
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		this.socket = socket;
+	}
+
+	/**
+	 * Resolves the server's host name, connects, and encodes a line with the
+	 * client's character set without sending it, so that the first
+	 * measurement does not pay for DNS, connection setup and class loading.
+	 * Does nothing if the client is already connected.
+	 * 
+	 * @throws IOException
+	 *             if there is an error connecting
+	 */
+	public void warmUp() throws IOException {
+		if (isConnected()) {
+			return;
+		}
+		connect();
+		warmUpEncoding();
+	}
+
+	/**
+	 * Resolves the server's host name and encodes a line without sending it,
+	 * like {@link #warmUp()}, but does not connect.
+	 * 
+	 * @throws IOException
+	 *             if the host name could not be resolved
+	 */
+	void warmUpWithoutConnecting() throws IOException {
+		resolver.resolve();
+		warmUpEncoding();
+	}
+
+	private void warmUpEncoding() throws IOException {
+		line.setLength(0);
+		appendHeader(line, "warm up", 0);
+		line.append(0.5);
+		appendTags(line);
+		discard(line);
+	}
+
+	/**
+	 * Encodes the given line the way {@link #write(StringBuilder)} does, but
+	 * throws the result away.
+	 */
+	void discard(StringBuilder line) throws IOException {
+		Writer discarding = new OutputStreamWriter(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}, charset);
+		discarding.write(toChars(line), 0, line.length());
+		discarding.flush();
 	}
 
 	/**
@@ -94,7 +264,15 @@ public class KairosDb implements Closeable {
 	}
 	
 	void setTags(Map<String, String> tags) {
-		this.tags = tags;
+		StringBuilder encoded = new StringBuilder();
+		for (Entry<String, String> entry : tags.entrySet()) {
+			encoded.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		this.encodedTags = encoded.toString();
+	}
+
+	boolean isConnected() {
+		return socket != null;
 	}
 
 	/**
@@ -113,21 +291,82 @@ public class KairosDb implements Closeable {
 		if (!isFinite(value)) {
 			return;
 		}
-		Writer writer = getWriter();
-		writer.write("put ");
-		writer.write(sanitize(name));
-		writer.write(' ');
-		writer.write(Long.toString(timestamp));
-		writer.write(' ');
-		writer.write(value.toString());
-		for (Entry<String, String> entry : this.tags.entrySet()) {
-			writer.write(' ');
-			writer.write(entry.getKey());
-			writer.write('=');
-			writer.write(entry.getValue());
+		checkConnected();
+		line.setLength(0);
+		appendHeader(line, name, timestamp);
+		line.append(value.toString());
+		appendTags(line);
+		sendLine(line);
+	}
+
+	/**
+	 * Sends a single encoded line, flushing it right away. Subclasses may
+	 * batch lines instead.
+	 */
+	void sendLine(StringBuilder line) throws IOException {
+		write(line);
+		flush();
+	}
+
+	/**
+	 * Writes the given, already encoded, lines to the server. The lines may be
+	 * buffered until {@link #flush()} is called.
+	 */
+	void write(StringBuilder lines) throws IOException {
+		getWriter().write(toChars(lines), 0, lines.length());
+	}
+
+	void flush() throws IOException {
+		getWriter().flush();
+	}
+
+	/**
+	 * Copies the given lines into a reused array, which grows as needed, and
+	 * returns it.
+	 */
+	char[] toChars(StringBuilder lines) {
+		int length = lines.length();
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
 		}
-		writer.write('\n');
-		writer.flush();
+		lines.getChars(0, length, chars, 0);
+		return chars;
+	}
+
+	/**
+	 * Appends "put &lt;name&gt; &lt;timestamp&gt; " to the given buffer, replacing
+	 * each run of whitespace in the name by a dash.
+	 */
+	static void appendHeader(StringBuilder out, String name, long timestamp) {
+		out.append("put ");
+		boolean whitespace = false;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (isWhitespace(c)) {
+				if (!whitespace) {
+					out.append('-');
+				}
+				whitespace = true;
+			} else {
+				out.append(c);
+				whitespace = false;
+			}
+		}
+		out.append(' ').append(timestamp).append(' ');
+	}
+
+	/**
+	 * Appends the tags and the line terminator to the given buffer.
+	 */
+	void appendTags(StringBuilder out) {
+		out.append(encodedTags).append('\n');
+	}
+
+	/**
+	 * Matches the characters of the regular expression {@code \s}.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
 	}
 
 	static boolean isFinite(Number number) {
@@ -148,14 +387,14 @@ public class KairosDb implements Closeable {
 		this.writer = null;
 	}
 
-	private String sanitize(String s) {
-		return WHITESPACE.matcher(s).replaceAll("-");
+	void checkConnected() {
+		if (!isConnected()) {
+			throw new IllegalStateException("Not connected");
+		}
 	}
 
 	private Writer getWriter() {
-		if (writer == null) {
-			throw new IllegalStateException("Not connected");
-		}
+		checkConnected();
 		return writer;
 	}
 	
@@ -5,6 +5,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
@@ -31,11 +32,19 @@ import com.codahale.metrics.Timer;
 public class KairosDbReporter extends ScheduledReporter {
 
 	private static final Pattern TAG_PATTERN = Pattern.compile("[\\p{Alnum}\\.\\-_/]+");
+	private static final Pattern PERCENTILE = Pattern.compile("p\\d+");
+	private static final long MAX_WARM_CONNECTION_AGE_NANOS = TimeUnit.SECONDS.toNanos(5);
+	private static final long WARM_UP_CONNECT_LEAD_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long STOP_TIMEOUT_MILLIS = 1000;
 	private static final Logger LOGGER = LoggerFactory.getLogger(KairosDbReporter.class);
 
 	private final KairosDb client;
 	private final Clock clock;
 	private final String prefix;
+	private final CardinalityLimiter limiter;
+	private final Map<String, Number> overflow = new LinkedHashMap<String, Number>();
+	private volatile Thread warmUp;
+	private volatile boolean stopped;
 
 	/**
 	 * Returns a new {@link Builder} for {@link KairosDbReporter}.
@@ -61,6 +70,9 @@ public class KairosDbReporter extends ScheduledReporter {
 		private TimeUnit durationUnit;
 		private MetricFilter filter;
 		private Map<String, String> tags;
+		private int maxMetrics;
+		private Map<String, Integer> prefixLimits;
+		private CardinalityLimiter.OverflowPolicy overflowPolicy;
 
 		private Builder(MetricRegistry registry) {
 			this.registry = registry;
@@ -70,6 +82,9 @@ public class KairosDbReporter extends ScheduledReporter {
 			this.durationUnit = TimeUnit.MILLISECONDS;
 			this.filter = MetricFilter.ALL;
 			this.tags = new LinkedHashMap<String, String>();
+			this.maxMetrics = Integer.MAX_VALUE;
+			this.prefixLimits = new LinkedHashMap<String, Integer>();
+			this.overflowPolicy = CardinalityLimiter.OverflowPolicy.DROP;
 		}
 
 		/**
@@ -148,6 +163,60 @@ public class KairosDbReporter extends ScheduledReporter {
 			return this;
 		}
 
+		/**
+		 * Report at most the given number of distinct metrics. A metric is
+		 * admitted or rejected as a whole, with all of its series; metrics
+		 * beyond this limit are handled according to the overflow policy. A
+		 * metric that is no longer in the registry frees its slot after the
+		 * next report.
+		 * 
+		 * @param maxMetrics
+		 *            the maximum number of distinct metrics
+		 * @return {@code this}
+		 */
+		public Builder limitMetricsTo(int maxMetrics) {
+			this.maxMetrics = maxMetrics;
+			return this;
+		}
+
+		/**
+		 * Report at most the given number of distinct metrics whose name starts
+		 * with the given prefix. The prefix is matched against the name of the
+		 * metric in the registry, without the prefix set with
+		 * {@link #prefixedWith(String)}, and only on a name segment boundary:
+		 * {@code users} matches {@code users.1} but not {@code usersettings}.
+		 * 
+		 * @param prefix
+		 *            the metric name prefix
+		 * @param maxMetrics
+		 *            the maximum number of distinct metrics with this prefix
+		 * @return {@code this}
+		 */
+		public Builder limitMetricsTo(String prefix, int maxMetrics) {
+			this.prefixLimits.put(prefix, maxMetrics);
+			return this;
+		}
+
+		/**
+		 * Handle metrics that exceed a limit with the given policy. Defaults to
+		 * {@link CardinalityLimiter.OverflowPolicy#DROP}. With
+		 * {@link CardinalityLimiter.OverflowPolicy#AGGREGATE}, the series of
+		 * rejected metrics are combined per metric type and statistic into
+		 * {@code <prefix>.other.<type>.<statistic>}, or
+		 * {@code other.<type>.<statistic>} for the global limit, where the type
+		 * is {@code counters}, {@code histograms}, {@code meters} or
+		 * {@code timers}. Counts and rates are summed, maxima and percentiles
+		 * report their maximum, and other statistics and gauges are dropped.
+		 * 
+		 * @param overflowPolicy
+		 *            the policy for metrics that exceed a limit
+		 * @return {@code this}
+		 */
+		public Builder onMetricOverflow(CardinalityLimiter.OverflowPolicy overflowPolicy) {
+			this.overflowPolicy = overflowPolicy;
+			return this;
+		}
+
 		/**
 		 * Builds a {@link KairosDbReporter} with the given properties, sending
 		 * metrics using the given {@link Graphite} client.
@@ -158,7 +227,11 @@ public class KairosDbReporter extends ScheduledReporter {
 		 */
 		public KairosDbReporter build(KairosDb kairosDb) {
 			kairosDb.setTags(tags);
-			return new KairosDbReporter(registry, kairosDb, clock, prefix, rateUnit, durationUnit, filter);
+			CardinalityLimiter limiter = null;
+			if (maxMetrics != Integer.MAX_VALUE || !prefixLimits.isEmpty()) {
+				limiter = new CardinalityLimiter(maxMetrics, prefixLimits, overflowPolicy);
+			}
+			return new KairosDbReporter(registry, kairosDb, clock, prefix, rateUnit, durationUnit, filter, limiter);
 		}
 
 		private void validateTag(String tagName, String tagValue) {
@@ -177,93 +250,237 @@ public class KairosDbReporter extends ScheduledReporter {
 	}
 
 	private KairosDbReporter(MetricRegistry registry, KairosDb kairosDb, Clock clock, String prefix, TimeUnit rateUnit,
-			TimeUnit durationUnit, MetricFilter filter) {
+			TimeUnit durationUnit, MetricFilter filter, CardinalityLimiter limiter) {
 		super(registry, "kairosdb-reporter", filter, rateUnit, durationUnit);
 		this.client = kairosDb;
 		this.clock = clock;
 		this.prefix = prefix;
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Returns the number of distinct metrics that were not reported as is in
+	 * the last completed report because they exceeded a limit, or 0 if no
+	 * limit is configured.
+	 */
+	public int getRejectionCount() {
+		return limiter == null ? 0 : limiter.getRejectionCount();
+	}
+
+	/**
+	 * Starts the reporter, and warms up the client on a separate thread so
+	 * that the first report is as fast as the ones that follow. The host name
+	 * is resolved right away, and the connection is made one second before the
+	 * first report is due, so it has not been idle long enough to be dropped
+	 * by a load balancer or the server. The first report reconnects if the
+	 * warmed-up connection is more than five seconds old anyway.
+	 */
+	@Override
+	public void start(long period, TimeUnit unit) {
+		final long connectAt = System.nanoTime() + unit.toNanos(period) - WARM_UP_CONNECT_LEAD_NANOS;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				warmUp(connectAt);
+			}
+		}, "kairosdb-reporter-warm-up");
+		thread.setDaemon(true);
+		this.warmUp = thread;
+		thread.start();
+		super.start(period, unit);
+	}
+
+	/**
+	 * Stops the reporter, and closes the warmed-up connection if it was not
+	 * used by a report. Waits at most a second for a warm-up that is still
+	 * connecting; it closes its connection itself once it is done.
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		stopped = true;
+		Thread warmUp = this.warmUp;
+		if (warmUp != null) {
+			LockSupport.unpark(warmUp);
+			try {
+				warmUp.join(STOP_TIMEOUT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (warmUp.isAlive()) {
+				return;
+			}
+		}
+		disconnect();
 	}
 
 	@Override
 	public void report(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters, SortedMap<String, Histogram> histograms,
 			SortedMap<String, Meter> meters, SortedMap<String, Timer> timers) {
 		final long timestamp = clock.getTime();
+		overflow.clear();
+		if (limiter != null) {
+			limiter.startReport();
+		}
 
 		try {
-			client.connect();
+			awaitWarmUp();
+			if (client.isConnected() && System.nanoTime() - client.getConnectedAt() > MAX_WARM_CONNECTION_AGE_NANOS) {
+				client.close();
+			}
+			if (!client.isConnected()) {
+				client.connect();
+			}
 
 			for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
-				reportGauge(entry.getKey(), entry.getValue(), timestamp);
+				String name = admit(entry.getKey());
+				// Gauges cannot be combined, so they are not aggregated.
+				if (name == entry.getKey()) {
+					reportGauge(name, entry.getValue(), timestamp);
+				}
 			}
 
 			for (Map.Entry<String, Counter> entry : counters.entrySet()) {
-				reportCounter(entry.getKey(), entry.getValue(), timestamp);
+				String name = admit(entry.getKey());
+				if (name != null) {
+					boolean aggregate = name != entry.getKey();
+					reportCounter(aggregate ? MetricRegistry.name(name, "counters") : name, entry.getValue(), timestamp, aggregate);
+				}
 			}
 
 			for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
-				reportHistogram(entry.getKey(), entry.getValue(), timestamp);
+				String name = admit(entry.getKey());
+				if (name != null) {
+					boolean aggregate = name != entry.getKey();
+					reportHistogram(aggregate ? MetricRegistry.name(name, "histograms") : name, entry.getValue(), timestamp, aggregate);
+				}
 			}
 
 			for (Map.Entry<String, Meter> entry : meters.entrySet()) {
-				reportMetered(entry.getKey(), entry.getValue(), timestamp);
+				String name = admit(entry.getKey());
+				if (name != null) {
+					boolean aggregate = name != entry.getKey();
+					reportMetered(aggregate ? MetricRegistry.name(name, "meters") : name, entry.getValue(), timestamp, aggregate);
+				}
 			}
 
 			for (Map.Entry<String, Timer> entry : timers.entrySet()) {
-				reportTimer(entry.getKey(), entry.getValue(), timestamp);
+				String name = admit(entry.getKey());
+				if (name != null) {
+					boolean aggregate = name != entry.getKey();
+					reportTimer(aggregate ? MetricRegistry.name(name, "timers") : name, entry.getValue(), timestamp, aggregate);
+				}
+			}
+
+			for (Map.Entry<String, Number> entry : overflow.entrySet()) {
+				client.send(entry.getKey(), entry.getValue(), timestamp);
+			}
+			client.flush();
+			if (limiter != null) {
+				limiter.endReport();
 			}
 		} catch (IOException e) {
 			LOGGER.warn("Unable to report to server {}", client);
 		} finally {
 			try {
+				// Clients that batch lines write the rest of the report here.
 				client.close();
 			} catch (IOException e) {
-				LOGGER.debug("Error disconnecting from server {}", client);
+				LOGGER.warn("Unable to finish report to server {}", client);
 			}
 		}
 	}
 
-	private void reportTimer(String name, Timer timer, long timestamp) throws IOException {
+	/**
+	 * Resolves the host name and encodes a line right away, and connects at
+	 * the given time, unless the reporter was stopped by then.
+	 */
+	private void warmUp(long connectAt) {
+		try {
+			client.warmUpWithoutConnecting();
+			long remaining;
+			while (!stopped && (remaining = connectAt - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, remaining);
+			}
+			if (!stopped) {
+				client.connect();
+			}
+		} catch (IOException e) {
+			LOGGER.debug("Unable to warm up connection to server {}", client);
+		}
+		if (stopped) {
+			disconnect();
+		}
+	}
+
+	/**
+	 * Waits for the warm-up started by {@link #start(long, TimeUnit)}, so the
+	 * client is not used by two threads at once.
+	 */
+	private void awaitWarmUp() {
+		Thread warmUp = this.warmUp;
+		if (warmUp == null) {
+			return;
+		}
+		try {
+			warmUp.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		this.warmUp = null;
+	}
+
+	private void disconnect() {
+		try {
+			client.close();
+		} catch (IOException e) {
+			LOGGER.debug("Error disconnecting from server {}", client);
+		}
+	}
+
+	private void reportTimer(String name, Timer timer, long timestamp, boolean aggregate) throws IOException {
 		final Snapshot snapshot = timer.getSnapshot();
 
-		client.send(prefix(name, "max"), convertDuration(snapshot.getMax()), timestamp);
-		client.send(prefix(name, "mean"), convertDuration(snapshot.getMean()), timestamp);
-		client.send(prefix(name, "min"), convertDuration(snapshot.getMin()), timestamp);
-		client.send(prefix(name, "stddev"), convertDuration(snapshot.getStdDev()), timestamp);
-		client.send(prefix(name, "p50"), convertDuration(snapshot.getMedian()), timestamp);
-		client.send(prefix(name, "p75"), convertDuration(snapshot.get75thPercentile()), timestamp);
-		client.send(prefix(name, "p95"), convertDuration(snapshot.get95thPercentile()), timestamp);
-		client.send(prefix(name, "p98"), convertDuration(snapshot.get98thPercentile()), timestamp);
-		client.send(prefix(name, "p99"), convertDuration(snapshot.get99thPercentile()), timestamp);
-		client.send(prefix(name, "p999"), convertDuration(snapshot.get999thPercentile()), timestamp);
-
-		reportMetered(name, timer, timestamp);
+		send(prefix(name, "max"), convertDuration(snapshot.getMax()), timestamp, aggregate);
+		send(prefix(name, "mean"), convertDuration(snapshot.getMean()), timestamp, aggregate);
+		send(prefix(name, "min"), convertDuration(snapshot.getMin()), timestamp, aggregate);
+		send(prefix(name, "stddev"), convertDuration(snapshot.getStdDev()), timestamp, aggregate);
+		send(prefix(name, "p50"), convertDuration(snapshot.getMedian()), timestamp, aggregate);
+		send(prefix(name, "p75"), convertDuration(snapshot.get75thPercentile()), timestamp, aggregate);
+		send(prefix(name, "p95"), convertDuration(snapshot.get95thPercentile()), timestamp, aggregate);
+		send(prefix(name, "p98"), convertDuration(snapshot.get98thPercentile()), timestamp, aggregate);
+		send(prefix(name, "p99"), convertDuration(snapshot.get99thPercentile()), timestamp, aggregate);
+		send(prefix(name, "p999"), convertDuration(snapshot.get999thPercentile()), timestamp, aggregate);
+
+		reportMetered(name, timer, timestamp, aggregate);
 	}
 
-	private void reportMetered(String name, Metered meter, long timestamp) throws IOException {
-		client.send(prefix(name, "count"), meter.getCount(), timestamp);
-		client.send(prefix(name, "m1_rate"), convertRate(meter.getOneMinuteRate()), timestamp);
-		client.send(prefix(name, "m5_rate"), convertRate(meter.getFiveMinuteRate()), timestamp);
-		client.send(prefix(name, "m15_rate"), convertRate(meter.getFifteenMinuteRate()), timestamp);
-		client.send(prefix(name, "mean_rate"), convertRate(meter.getMeanRate()), timestamp);
+	private void reportMetered(String name, Metered meter, long timestamp, boolean aggregate) throws IOException {
+		send(prefix(name, "count"), meter.getCount(), timestamp, aggregate);
+		send(prefix(name, "m1_rate"), convertRate(meter.getOneMinuteRate()), timestamp, aggregate);
+		send(prefix(name, "m5_rate"), convertRate(meter.getFiveMinuteRate()), timestamp, aggregate);
+		send(prefix(name, "m15_rate"), convertRate(meter.getFifteenMinuteRate()), timestamp, aggregate);
+		send(prefix(name, "mean_rate"), convertRate(meter.getMeanRate()), timestamp, aggregate);
 	}
 
-	private void reportHistogram(String name, Histogram histogram, long timestamp) throws IOException {
+	private void reportHistogram(String name, Histogram histogram, long timestamp, boolean aggregate) throws IOException {
 		final Snapshot snapshot = histogram.getSnapshot();
-		client.send(prefix(name, "count"), histogram.getCount(), timestamp);
-		client.send(prefix(name, "max"), snapshot.getMax(), timestamp);
-		client.send(prefix(name, "mean"), snapshot.getMean(), timestamp);
-		client.send(prefix(name, "min"), snapshot.getMin(), timestamp);
-		client.send(prefix(name, "stddev"), snapshot.getStdDev(), timestamp);
-		client.send(prefix(name, "p50"), snapshot.getMedian(), timestamp);
-		client.send(prefix(name, "p75"), snapshot.get75thPercentile(), timestamp);
-		client.send(prefix(name, "p95"), snapshot.get95thPercentile(), timestamp);
-		client.send(prefix(name, "p98"), snapshot.get98thPercentile(), timestamp);
-		client.send(prefix(name, "p99"), snapshot.get99thPercentile(), timestamp);
-		client.send(prefix(name, "p999"), snapshot.get999thPercentile(), timestamp);
+		send(prefix(name, "count"), histogram.getCount(), timestamp, aggregate);
+		send(prefix(name, "max"), snapshot.getMax(), timestamp, aggregate);
+		send(prefix(name, "mean"), snapshot.getMean(), timestamp, aggregate);
+		send(prefix(name, "min"), snapshot.getMin(), timestamp, aggregate);
+		send(prefix(name, "stddev"), snapshot.getStdDev(), timestamp, aggregate);
+		send(prefix(name, "p50"), snapshot.getMedian(), timestamp, aggregate);
+		send(prefix(name, "p75"), snapshot.get75thPercentile(), timestamp, aggregate);
+		send(prefix(name, "p95"), snapshot.get95thPercentile(), timestamp, aggregate);
+		send(prefix(name, "p98"), snapshot.get98thPercentile(), timestamp, aggregate);
+		send(prefix(name, "p99"), snapshot.get99thPercentile(), timestamp, aggregate);
+		send(prefix(name, "p999"), snapshot.get999thPercentile(), timestamp, aggregate);
 	}
 
-	private void reportCounter(String name, Counter counter, long timestamp) throws IOException {
-		client.send(prefix(name, "count"), counter.getCount(), timestamp);
+	private void reportCounter(String name, Counter counter, long timestamp, boolean aggregate) throws IOException {
+		send(prefix(name, "count"), counter.getCount(), timestamp, aggregate);
 	}
 
 	private void reportGauge(String name, Gauge<?> gauge, long timestamp) throws IOException {
@@ -273,6 +490,42 @@ public class KairosDbReporter extends ScheduledReporter {
 		}
 	}
 
+	/**
+	 * Returns the given name if the metric is reported as is, the name of the
+	 * "other" bucket it is aggregated into, or {@code null} if it is not
+	 * reported.
+	 */
+	private String admit(String name) {
+		return limiter == null ? name : limiter.admit(name);
+	}
+
+	private void send(String series, Number value, long timestamp, boolean aggregate) throws IOException {
+		if (aggregate) {
+			aggregate(series, value);
+		} else {
+			client.send(series, value, timestamp);
+		}
+	}
+
+	/**
+	 * Combines the given value into the "other" bucket series, if the
+	 * statistic can be combined meaningfully. Counts are summed as longs.
+	 */
+	private void aggregate(String series, Number value) {
+		if (!KairosDb.isFinite(value)) {
+			return;
+		}
+		String statistic = series.substring(series.lastIndexOf('.') + 1);
+		Number previous = overflow.get(series);
+		if (statistic.equals("count")) {
+			overflow.put(series, previous == null ? value.longValue() : previous.longValue() + value.longValue());
+		} else if (statistic.endsWith("_rate")) {
+			overflow.put(series, previous == null ? value.doubleValue() : previous.doubleValue() + value.doubleValue());
+		} else if (statistic.equals("max") || PERCENTILE.matcher(statistic).matches()) {
+			overflow.put(series, previous == null ? value.doubleValue() : Math.max(previous.doubleValue(), value.doubleValue()));
+		}
+	}
+
 	private String prefix(String... components) {
 		return MetricRegistry.name(prefix, components);
 	}
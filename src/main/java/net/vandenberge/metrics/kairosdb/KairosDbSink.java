@@ -0,0 +1,519 @@
+package net.vandenberge.metrics.kairosdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread-safe sink which lets any number of application threads send
+ * measurements to a KairosDB server. Each thread encodes its measurements into
+ * one of several striped buffers, so threads rarely contend. A single I/O
+ * thread periodically drains all stripes and writes them to the server in one
+ * batch.
+ * <p>
+ * When a stripe is full the sink is saturated and the configured
+ * {@link SaturationPolicy} applies. Measurements that could not be delivered,
+ * either because of saturation or because the server was unreachable, are
+ * counted in {@link #getDroppedCount()}.
+ * <p>
+ * While the server is unreachable, the I/O thread retries with an exponential
+ * backoff of up to 30 seconds and leaves measurements in the stripes in the
+ * meantime; senders are never blocked during such an outage. Connecting blocks the I/O thread, so give the client a connect
+ * timeout with {@link KairosDb#setConnectTimeout(long, TimeUnit)}.
+ * <p>
+ * The sink takes ownership of its {@link KairosDb} client; the client must not
+ * be shared with a {@link KairosDbReporter}.
+ */
+public class KairosDbSink implements Closeable {
+
+	/**
+	 * What to do when a measurement is sent while its stripe is full.
+	 */
+	public enum SaturationPolicy {
+		/**
+		 * The measurement is dropped and {@code send} returns {@code false}.
+		 */
+		DROP,
+
+		/**
+		 * The sending thread waits until the I/O thread has drained the stripe,
+		 * for at most the maximum block time, after which the measurement is
+		 * dropped. Measurements are dropped right away before the sink is
+		 * started, and while the server is unreachable.
+		 */
+		BLOCK
+	}
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(KairosDbSink.class);
+	private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private final KairosDb client;
+	private final Stripe[] stripes;
+	private final int stripeCapacity;
+	private final long flushIntervalNanos;
+	private final SaturationPolicy policy;
+	private final long maxBlockNanos;
+	private final Thread ioThread;
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean started;
+	private volatile boolean closed;
+	private volatile boolean unreachable;
+
+	// Only accessed by the thread that drains.
+	private long backoffNanos;
+	private long reconnectAt;
+
+	/**
+	 * Returns a new {@link Builder} for {@link KairosDbSink}.
+	 *
+	 * @param client
+	 *            the client used to send measurements
+	 * @return a {@link Builder} instance for a {@link KairosDbSink}
+	 */
+	public static Builder forClient(KairosDb client) {
+		return new Builder(client);
+	}
+
+	/**
+	 * A builder for {@link KairosDbSink} instances. Defaults to two stripes
+	 * per available processor, stripes of 64K characters, flushing every 100
+	 * milliseconds, dropping measurements when saturated, blocking for at most
+	 * one second when blocking, and not adding tags.
+	 */
+	public static class Builder {
+		private final KairosDb client;
+		private int stripes;
+		private int stripeCapacity;
+		private long flushIntervalNanos;
+		private SaturationPolicy policy;
+		private long maxBlockNanos;
+		private Map<String, String> tags;
+
+		private Builder(KairosDb client) {
+			this.client = client;
+			this.stripes = Runtime.getRuntime().availableProcessors() * 2;
+			this.stripeCapacity = 64 * 1024;
+			this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+			this.policy = SaturationPolicy.DROP;
+			this.maxBlockNanos = TimeUnit.SECONDS.toNanos(1);
+			this.tags = new LinkedHashMap<String, String>();
+		}
+
+		/**
+		 * Use the given number of stripes, rounded up to a power of two.
+		 *
+		 * @param stripes
+		 *            the number of stripes
+		 * @return {@code this}
+		 */
+		public Builder withStripes(int stripes) {
+			this.stripes = stripes;
+			return this;
+		}
+
+		/**
+		 * Buffer up to the given number of characters per stripe.
+		 *
+		 * @param stripeCapacity
+		 *            the capacity of each stripe in characters
+		 * @return {@code this}
+		 */
+		public Builder withStripeCapacity(int stripeCapacity) {
+			this.stripeCapacity = stripeCapacity;
+			return this;
+		}
+
+		/**
+		 * Drain the stripes at least once per the given interval.
+		 *
+		 * @param interval
+		 *            the flush interval
+		 * @param unit
+		 *            the unit of {@code interval}
+		 * @return {@code this}
+		 */
+		public Builder withFlushInterval(long interval, TimeUnit unit) {
+			this.flushIntervalNanos = unit.toNanos(interval);
+			return this;
+		}
+
+		/**
+		 * Handle saturation with the given policy.
+		 *
+		 * @param policy
+		 *            a {@link SaturationPolicy}
+		 * @return {@code this}
+		 */
+		public Builder onSaturation(SaturationPolicy policy) {
+			this.policy = policy;
+			return this;
+		}
+
+		/**
+		 * With {@link SaturationPolicy#BLOCK}, wait at most the given time for
+		 * room in a stripe before dropping the measurement.
+		 *
+		 * @param maxBlockTime
+		 *            the maximum time to block a sending thread
+		 * @param unit
+		 *            the unit of {@code maxBlockTime}
+		 * @return {@code this}
+		 */
+		public Builder withMaxBlockTime(long maxBlockTime, TimeUnit unit) {
+			this.maxBlockNanos = unit.toNanos(maxBlockTime);
+			return this;
+		}
+
+		/**
+		 * Add a tag to each measurement. KairosDB requires at least one tag.
+		 * Both tag name and value must match the following regular expression:
+		 * <pre>[\p{Alnum}\.\-_/]+</pre>
+		 *
+		 * @param tagName
+		 *            the tag name
+		 * @param tagValue
+		 *            the tag value
+		 * @return {@code this}
+		 */
+		public Builder withTag(String tagName, String tagValue) {
+			KairosDbReporter.Builder.validateTag(tagName);
+			KairosDbReporter.Builder.validateTag(tagValue);
+			this.tags.put(tagName, tagValue);
+			return this;
+		}
+
+		/**
+		 * Builds a {@link KairosDbSink} with the given properties. The sink
+		 * buffers measurements, but does not write them until
+		 * {@link KairosDbSink#start()} is called.
+		 *
+		 * @return a {@link KairosDbSink}
+		 */
+		public KairosDbSink build() {
+			if (stripes < 1 || stripeCapacity < 1) {
+				throw new IllegalArgumentException("stripes and stripeCapacity must be positive");
+			}
+			int powerOfTwo = 1;
+			while (powerOfTwo < stripes) {
+				powerOfTwo <<= 1;
+			}
+			client.setTags(tags);
+			return new KairosDbSink(client, powerOfTwo, stripeCapacity, flushIntervalNanos, policy, maxBlockNanos);
+		}
+	}
+
+	/**
+	 * An encode buffer shared by the threads that hash to it. Producers append
+	 * to {@code buffer} while holding the stripe's monitor; the I/O thread swaps
+	 * it with {@code spare} and writes the spare outside the monitor.
+	 */
+	private static final class Stripe {
+		private StringBuilder buffer;
+		private StringBuilder spare;
+
+		private Stripe(int capacity) {
+			// Lines may overshoot the capacity by one line.
+			this.buffer = new StringBuilder(capacity + 256);
+			this.spare = new StringBuilder(capacity + 256);
+		}
+	}
+
+	private KairosDbSink(KairosDb client, int stripes, int stripeCapacity, long flushIntervalNanos, SaturationPolicy policy,
+			long maxBlockNanos) {
+		this.client = client;
+		this.stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new Stripe(stripeCapacity);
+		}
+		this.stripeCapacity = stripeCapacity;
+		this.flushIntervalNanos = flushIntervalNanos;
+		this.policy = policy;
+		this.maxBlockNanos = maxBlockNanos;
+		this.ioThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runIoLoop();
+			}
+		}, "kairosdb-sink");
+		this.ioThread.setDaemon(true);
+	}
+
+	/**
+	 * Starts the I/O thread, which connects to the server right away.
+	 *
+	 * @throws IllegalStateException
+	 *             if the sink is already started or closed
+	 */
+	public synchronized void start() throws IllegalStateException {
+		if (started || closed) {
+			throw new IllegalStateException("Already started");
+		}
+		started = true;
+		ioThread.start();
+	}
+
+	/**
+	 * Sends the given measurement without allocating.
+	 *
+	 * @param name
+	 *            the name of the metric
+	 * @param value
+	 *            the value of the metric
+	 * @param timestamp
+	 *            the timestamp of the metric
+	 * @return {@code false} if the measurement was dropped
+	 */
+	public boolean send(String name, long value, long timestamp) {
+		Stripe stripe = stripe();
+		synchronized (stripe) {
+			if (!reserve(stripe)) {
+				return false;
+			}
+			int mark = stripe.buffer.length();
+			KairosDb.appendHeader(stripe.buffer, name, timestamp);
+			stripe.buffer.append(value);
+			client.appendTags(stripe.buffer);
+			signalIfHalfFull(stripe, mark);
+		}
+		return true;
+	}
+
+	/**
+	 * Sends the given measurement. If the value is an infinite value or NaN,
+	 * nothing is sent.
+	 *
+	 * @param name
+	 *            the name of the metric
+	 * @param value
+	 *            the value of the metric
+	 * @param timestamp
+	 *            the timestamp of the metric
+	 * @return {@code false} if the measurement was dropped
+	 */
+	public boolean send(String name, double value, long timestamp) {
+		if (!Double.isFinite(value)) {
+			return true;
+		}
+		Stripe stripe = stripe();
+		synchronized (stripe) {
+			if (!reserve(stripe)) {
+				return false;
+			}
+			int mark = stripe.buffer.length();
+			KairosDb.appendHeader(stripe.buffer, name, timestamp);
+			stripe.buffer.append(value);
+			client.appendTags(stripe.buffer);
+			signalIfHalfFull(stripe, mark);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of measurements that were dropped, either because the
+	 * sink was saturated or closed, or because they could not be written to
+	 * the server.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Writes all buffered measurements, stops the I/O thread and closes the
+	 * connection to the server.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		if (started) {
+			LockSupport.unpark(ioThread);
+			try {
+				ioThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else {
+			drain(true);
+			client.close();
+		}
+	}
+
+	private Stripe stripe() {
+		return stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+	}
+
+	/**
+	 * Waits at most the maximum block time until the stripe has room for
+	 * another line, or returns {@code false} if the line must be dropped. Must
+	 * hold the stripe's monitor.
+	 */
+	private boolean reserve(Stripe stripe) {
+		long deadline = 0;
+		while (stripe.buffer.length() >= stripeCapacity || closed) {
+			// Nothing drains the stripe before start() or while the server is
+			// unreachable, so waiting would only stall the sender.
+			if (closed || policy == SaturationPolicy.DROP || !started || unreachable) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			if (deadline == 0) {
+				deadline = System.nanoTime() + maxBlockNanos;
+			}
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			LockSupport.unpark(ioThread);
+			try {
+				TimeUnit.NANOSECONDS.timedWait(stripe, remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wakes the I/O thread when the stripe crosses half its capacity, so it is
+	 * drained before it saturates.
+	 */
+	private void signalIfHalfFull(Stripe stripe, int mark) {
+		int half = stripeCapacity >>> 1;
+		if (mark < half && stripe.buffer.length() >= half && started) {
+			LockSupport.unpark(ioThread);
+		}
+	}
+
+	private void runIoLoop() {
+		try {
+			client.warmUp();
+		} catch (IOException e) {
+			LOGGER.debug("Unable to warm up connection to server {}", client);
+		}
+		while (!closed) {
+			LockSupport.parkNanos(this, flushIntervalNanos);
+			drain(false);
+		}
+		drain(true);
+		try {
+			client.close();
+		} catch (IOException e) {
+			LOGGER.debug("Error disconnecting from server {}", client);
+		}
+	}
+
+	/**
+	 * Writes the contents of all stripes to the server. Only called by the I/O
+	 * thread, or by {@link #close()} if the sink was never started. While
+	 * backing off after a failure, the stripes are left alone unless the sink
+	 * is closing.
+	 */
+	private void drain(boolean closing) {
+		if (!client.isConnected()) {
+			if (!closing && System.nanoTime() - reconnectAt < 0) {
+				return;
+			}
+			try {
+				client.connect();
+				unreachable = false;
+			} catch (IOException e) {
+				failed(e);
+				if (!closing) {
+					return;
+				}
+			}
+		}
+		boolean written = false;
+		boolean failed = !client.isConnected();
+		for (Stripe stripe : stripes) {
+			StringBuilder batch;
+			synchronized (stripe) {
+				if (stripe.buffer.length() == 0) {
+					continue;
+				}
+				batch = stripe.buffer;
+				stripe.buffer = stripe.spare;
+				stripe.spare = batch;
+				stripe.notifyAll();
+			}
+			if (!failed) {
+				try {
+					client.write(batch);
+					written = true;
+				} catch (IOException e) {
+					failed(e);
+					failed = true;
+				}
+			}
+			if (failed) {
+				dropped.addAndGet(countLines(batch));
+			}
+			batch.setLength(0);
+		}
+		if (written && !failed) {
+			try {
+				client.flush();
+				recovered();
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+	}
+
+	/**
+	 * Disconnects and schedules the next connection attempt. Only the first
+	 * failure of an outage is logged as a warning.
+	 */
+	private void failed(IOException e) {
+		if (backoffNanos == 0) {
+			LOGGER.warn("Unable to send to server {}, retrying in the background", client);
+			backoffNanos = MIN_BACKOFF_NANOS;
+		} else {
+			LOGGER.debug("Still unable to send to server {}: {}", client, e.toString());
+			backoffNanos = Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+		}
+		reconnectAt = System.nanoTime() + backoffNanos;
+		unreachable = true;
+		disconnect();
+	}
+
+	private void recovered() {
+		if (backoffNanos != 0) {
+			LOGGER.info("Reconnected to server {}", client);
+			backoffNanos = 0;
+		}
+	}
+
+	private void disconnect() {
+		try {
+			client.close();
+		} catch (IOException e) {
+			LOGGER.debug("Error disconnecting from server {}", client);
+		}
+	}
+
+	private static int countLines(StringBuilder batch) {
+		int lines = 0;
+		for (int i = 0; i < batch.length(); i++) {
+			if (batch.charAt(i) == '\n') {
+				lines++;
+			}
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,278 @@
+package net.vandenberge.metrics.kairosdb;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+/**
+ * A KairosDB client which writes through a non-blocking {@link SocketChannel}.
+ * Lines are encoded straight into pooled direct buffers. Each time a buffer
+ * fills up, and when the client is flushed, the queued buffers are written with
+ * a single gathering write, as far as the socket accepts them without blocking,
+ * so writing overlaps encoding. Partially written buffers stay queued and are
+ * retried on the next write, so a slow server does not stall the caller until
+ * the queue is full; only then, and on {@link #close()}, does the client wait
+ * for the server, for at most the write timeout.
+ * <p>
+ * The {@link SocketFactory} and the socket and writer of {@link KairosDb} are
+ * not used by this class.
+ */
+public class NioKairosDb extends KairosDb {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_PENDING = 16;
+
+	private final CharsetEncoder encoder;
+	private final long writeTimeoutNanos;
+	private final DirectBufferPool pool = new DirectBufferPool(BUFFER_SIZE, MAX_PENDING + 1);
+	private final ByteBuffer[] pending = new ByteBuffer[MAX_PENDING];
+
+	private SocketChannel channel;
+	private Selector selector;
+	private ByteBuffer current;
+	private int head;
+	private int tail;
+	private CharBuffer charBuffer;
+
+	/**
+	 * Creates a new KairosDB client which connects to the given address.
+	 *
+	 * @param address
+	 *            the address of the KairosDB server
+	 */
+	public NioKairosDb(InetSocketAddress address) {
+		this(address, UTF_8);
+	}
+
+	/**
+	 * Creates a new KairosDB client which connects to the given address using
+	 * the given character set.
+	 *
+	 * @param address
+	 *            the address of the KairosDB server
+	 * @param charset
+	 *            the character set used by the server
+	 */
+	public NioKairosDb(InetSocketAddress address, Charset charset) {
+		this(address, charset, 10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Creates a new KairosDB client which connects to the given address using
+	 * the given character set, waiting at most the given time for the server to
+	 * accept data.
+	 *
+	 * @param address
+	 *            the address of the KairosDB server
+	 * @param charset
+	 *            the character set used by the server
+	 * @param writeTimeout
+	 *            the maximum time to wait for the server to accept data
+	 * @param unit
+	 *            the unit of {@code writeTimeout}
+	 */
+	public NioKairosDb(InetSocketAddress address, Charset charset, long writeTimeout, TimeUnit unit) {
+		super(address, SocketFactory.getDefault(), charset);
+		// Same replacement behavior as the OutputStreamWriter used by KairosDb.
+		this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.writeTimeoutNanos = unit.toNanos(writeTimeout);
+	}
+
+	@Override
+	void connect(InetAddress address, int port, int timeoutMillis) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().connect(new InetSocketAddress(address, port), timeoutMillis);
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		this.channel = channel;
+		this.current = pool.acquire();
+	}
+
+	/**
+	 * Encodes the line into a buffer and clears it. Works without a
+	 * connection, since a single line never fills a buffer.
+	 */
+	@Override
+	void discard(StringBuilder line) throws IOException {
+		boolean idle = current == null;
+		if (idle) {
+			current = pool.acquire();
+		}
+		encode(line);
+		current.clear();
+		if (idle) {
+			pool.release(current);
+			current = null;
+		}
+	}
+
+	@Override
+	boolean isConnected() {
+		return channel != null;
+	}
+
+	/**
+	 * Encodes the line without flushing, so lines are written in batches.
+	 */
+	@Override
+	void sendLine(StringBuilder line) throws IOException {
+		checkConnected();
+		encode(line);
+	}
+
+	@Override
+	void write(StringBuilder lines) throws IOException {
+		checkConnected();
+		encode(lines);
+	}
+
+	/**
+	 * Writes as much of the encoded data as the socket accepts without
+	 * blocking.
+	 */
+	@Override
+	void flush() throws IOException {
+		checkConnected();
+		if (current.position() > 0) {
+			enqueue();
+		} else {
+			writePending();
+		}
+	}
+
+	/**
+	 * Writes all encoded data, waiting at most the write timeout, and closes the
+	 * connection.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		try {
+			if (current.position() > 0) {
+				enqueue();
+			}
+			awaitPending(true);
+		} finally {
+			for (int i = head; i < tail; i++) {
+				pool.release(pending[i]);
+			}
+			Arrays.fill(pending, null);
+			head = 0;
+			tail = 0;
+			pool.release(current);
+			current = null;
+			try {
+				if (selector != null) {
+					selector.close();
+				}
+			} finally {
+				selector = null;
+				try {
+					channel.close();
+				} finally {
+					channel = null;
+				}
+			}
+		}
+	}
+
+	private void encode(StringBuilder s) throws IOException {
+		int length = s.length();
+		char[] chars = toChars(s);
+		if (charBuffer == null || charBuffer.array() != chars) {
+			charBuffer = CharBuffer.wrap(chars);
+		}
+		charBuffer.clear();
+		charBuffer.limit(length);
+		CoderResult result;
+		while ((result = encoder.encode(charBuffer, current, true)).isOverflow()) {
+			enqueue();
+		}
+		if (result.isError()) {
+			encoder.reset();
+			result.throwException();
+		}
+		while (encoder.flush(current).isOverflow()) {
+			enqueue();
+		}
+		encoder.reset();
+	}
+
+	/**
+	 * Queues the current buffer, starts a new one, and writes as much of the
+	 * queue as the socket accepts without blocking. Waits for the server if
+	 * the queue is full.
+	 */
+	private void enqueue() throws IOException {
+		if (tail == pending.length) {
+			awaitPending(false);
+		}
+		current.flip();
+		pending[tail++] = current;
+		current = pool.acquire();
+		writePending();
+	}
+
+	/**
+	 * Writes the queued buffers until the queue has room for another buffer,
+	 * or until it is empty if {@code all} is set.
+	 */
+	private void awaitPending(boolean all) throws IOException {
+		long deadline = System.nanoTime() + writeTimeoutNanos;
+		writePending();
+		while (all ? tail > 0 : tail == pending.length) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				throw new IOException("Timed out writing to " + this);
+			}
+			if (selector == null) {
+				selector = Selector.open();
+				channel.register(selector, SelectionKey.OP_WRITE);
+			}
+			selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+			selector.selectedKeys().clear();
+			writePending();
+		}
+	}
+
+	/**
+	 * Writes as much of the queued buffers as the socket accepts, in a single
+	 * gathering write, and recycles the buffers that were written completely.
+	 */
+	private void writePending() throws IOException {
+		if (head == tail) {
+			return;
+		}
+		channel.write(pending, head, tail - head);
+		while (head < tail && !pending[head].hasRemaining()) {
+			pool.release(pending[head]);
+			pending[head++] = null;
+		}
+		if (head > 0) {
+			System.arraycopy(pending, head, pending, 0, tail - head);
+			Arrays.fill(pending, tail - head, tail, null);
+			tail -= head;
+			head = 0;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package net.vandenberge.metrics.kairosdb;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AddressResolverTest {
+	private static final InetAddress A = address(10, 0, 0, 1);
+	private static final InetAddress B = address(10, 0, 0, 2);
+	private static final InetAddress C = address(10, 0, 0, 3);
+
+	private InetAddress[] dns = { A, B };
+	private int lookups;
+
+	@Test
+	public void usesConstructorAddressUntilTtlExpires() throws Exception {
+		AddressResolver resolver = resolver(new InetSocketAddress(C, 4242), TimeUnit.HOURS.toNanos(1));
+
+		assertThat(resolver.resolve()).containsExactly(C);
+		assertThat(lookups).isEqualTo(0);
+	}
+
+	@Test
+	public void resolvesAgainAfterTtl() throws Exception {
+		AddressResolver resolver = resolver(new InetSocketAddress(C, 4242), 0);
+
+		assertThat(resolver.resolve()).containsExactly(A, B);
+		dns = new InetAddress[] { B, C };
+		assertThat(resolver.resolve()).containsExactly(B, C);
+	}
+
+	@Test
+	public void resolvesUnresolvedAddressRightAway() throws Exception {
+		AddressResolver resolver = resolver(InetSocketAddress.createUnresolved("kairosdb", 4242), TimeUnit.HOURS.toNanos(1));
+
+		assertThat(resolver.resolve()).containsExactly(A, B);
+		assertThat(resolver.resolve()).containsExactly(A, B);
+		assertThat(lookups).isEqualTo(1);
+	}
+
+	@Test
+	public void returnsConnectedAddressFirst() throws Exception {
+		AddressResolver resolver = resolver(InetSocketAddress.createUnresolved("kairosdb", 4242), TimeUnit.HOURS.toNanos(1));
+		resolver.resolve();
+		resolver.connected(B);
+
+		assertThat(resolver.resolve()).containsExactly(B, A);
+	}
+
+	@Test
+	public void refreshReturnsUntriedAddresses() throws Exception {
+		AddressResolver resolver = resolver(new InetSocketAddress(A, 4242), TimeUnit.HOURS.toNanos(1));
+		InetAddress[] tried = resolver.resolve();
+		dns = new InetAddress[] { A, C };
+
+		assertThat(resolver.refresh(tried)).containsExactly(C);
+		assertThat(resolver.resolve()).containsExactly(A, C);
+	}
+
+	@Test
+	public void refreshDoesNotLookUpAgainRightAfterLookup() throws Exception {
+		AddressResolver resolver = resolver(InetSocketAddress.createUnresolved("kairosdb", 4242), TimeUnit.HOURS.toNanos(1));
+		InetAddress[] tried = resolver.resolve();
+
+		assertThat(resolver.refresh(tried)).isEmpty();
+		assertThat(lookups).isEqualTo(1);
+	}
+
+	@Test
+	public void keepsPreviousAddressesWhenResolvingFails() throws Exception {
+		AddressResolver resolver = resolver(new InetSocketAddress(C, 4242), 0);
+		dns = null;
+
+		assertThat(resolver.resolve()).containsExactly(C);
+	}
+
+	@Test(expected = UnknownHostException.class)
+	public void failsWithoutAnyAddress() throws Exception {
+		dns = null;
+		resolver(InetSocketAddress.createUnresolved("kairosdb", 4242), 0).resolve();
+	}
+
+	private AddressResolver resolver(InetSocketAddress address, long ttlNanos) {
+		return new AddressResolver(address, ttlNanos) {
+			@Override
+			InetAddress[] lookup(String host) throws UnknownHostException {
+				lookups++;
+				if (dns == null) {
+					throw new UnknownHostException(host);
+				}
+				return dns.clone();
+			}
+		};
+	}
+
+	private static InetAddress address(int a, int b, int c, int d) {
+		try {
+			return InetAddress.getByAddress(new byte[] { (byte) a, (byte) b, (byte) c, (byte) d });
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package net.vandenberge.metrics.kairosdb;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.vandenberge.metrics.kairosdb.CardinalityLimiter.OverflowPolicy;
+
+import org.junit.Test;
+
+public class CardinalityLimiterTest {
+
+	private static final Map<String, Integer> NO_PREFIX_LIMITS = Collections.emptyMap();
+
+	@Test
+	public void admitsMetricsUpToGlobalLimit() {
+		CardinalityLimiter limiter = new CardinalityLimiter(2, NO_PREFIX_LIMITS, OverflowPolicy.DROP);
+
+		limiter.startReport();
+		assertThat(limiter.admit("a")).isEqualTo("a");
+		assertThat(limiter.admit("b")).isEqualTo("b");
+		assertThat(limiter.admit("c")).isNull();
+		limiter.endReport();
+		assertThat(limiter.getAdmittedCount()).isEqualTo(2);
+		assertThat(limiter.getRejectionCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void keepsAdmittingKnownMetrics() {
+		CardinalityLimiter limiter = new CardinalityLimiter(1, NO_PREFIX_LIMITS, OverflowPolicy.DROP);
+		report(limiter, "a", "b");
+
+		limiter.startReport();
+		assertThat(limiter.admit("a")).isEqualTo("a");
+		assertThat(limiter.admit("b")).isNull();
+		limiter.endReport();
+		assertThat(limiter.getRejectionCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void forgetsMetricsMissingFromCompletedReport() {
+		CardinalityLimiter limiter = new CardinalityLimiter(1, NO_PREFIX_LIMITS, OverflowPolicy.DROP);
+		report(limiter, "a");
+		// An incomplete report does not expire anything.
+		limiter.startReport();
+		report(limiter, "b");
+
+		assertThat(limiter.getAdmittedCount()).isEqualTo(0);
+		assertThat(limiter.getRejectionCount()).isEqualTo(1);
+		report(limiter, "b");
+		assertThat(limiter.getAdmittedCount()).isEqualTo(1);
+		assertThat(limiter.getRejectionCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void matchesPrefixesOnSegmentBoundary() {
+		Map<String, Integer> prefixLimits = new LinkedHashMap<String, Integer>();
+		prefixLimits.put("users", 0);
+		CardinalityLimiter limiter = new CardinalityLimiter(Integer.MAX_VALUE, prefixLimits, OverflowPolicy.DROP);
+
+		assertThat(limiter.admit("users")).isNull();
+		assertThat(limiter.admit("users.1")).isNull();
+		assertThat(limiter.admit("usersettings")).isEqualTo("usersettings");
+		assertThat(limiter.admit("users2.1")).isEqualTo("users2.1");
+	}
+
+	@Test
+	public void enforcesLongestMatchingPrefixLimit() {
+		Map<String, Integer> prefixLimits = new LinkedHashMap<String, Integer>();
+		prefixLimits.put("http", 10);
+		prefixLimits.put("http.users", 1);
+		CardinalityLimiter limiter = new CardinalityLimiter(100, prefixLimits, OverflowPolicy.DROP);
+
+		assertThat(limiter.admit("http.users.1")).isEqualTo("http.users.1");
+		assertThat(limiter.admit("http.users.2")).isNull();
+		assertThat(limiter.admit("http.requests")).isEqualTo("http.requests");
+		assertThat(limiter.admit("jvm.heap")).isEqualTo("jvm.heap");
+	}
+
+	@Test
+	public void aggregatesOverflowIntoOtherBuckets() {
+		Map<String, Integer> prefixLimits = new LinkedHashMap<String, Integer>();
+		prefixLimits.put("http.users", 1);
+		CardinalityLimiter limiter = new CardinalityLimiter(2, prefixLimits, OverflowPolicy.AGGREGATE);
+
+		limiter.startReport();
+		limiter.admit("http.users.1");
+		assertThat(limiter.admit("http.users.2")).isEqualTo("http.users.other");
+		limiter.admit("jvm.heap");
+		assertThat(limiter.admit("jvm.threads")).isEqualTo("other");
+		limiter.endReport();
+		assertThat(limiter.getRejectionCount()).isEqualTo(2);
+	}
+
+	@Test
+	public void memoryIsBoundedByGlobalLimit() {
+		CardinalityLimiter limiter = new CardinalityLimiter(1000, NO_PREFIX_LIMITS, OverflowPolicy.DROP);
+
+		limiter.startReport();
+		for (int i = 0; i < 1000000; i++) {
+			limiter.admit("user." + i);
+		}
+		limiter.endReport();
+
+		assertThat(limiter.getAdmittedCount()).isEqualTo(1000);
+		assertThat(limiter.getRejectionCount()).isEqualTo(999000);
+	}
+
+	@Test
+	public void doesNotTrackNamesWithoutLimit() {
+		Map<String, Integer> prefixLimits = new LinkedHashMap<String, Integer>();
+		prefixLimits.put("http.users", 10);
+		CardinalityLimiter limiter = new CardinalityLimiter(Integer.MAX_VALUE, prefixLimits, OverflowPolicy.DROP);
+
+		limiter.startReport();
+		for (int i = 0; i < 1000000; i++) {
+			assertThat(limiter.admit("user." + i)).isEqualTo("user." + i);
+		}
+		limiter.endReport();
+
+		assertThat(limiter.getAdmittedCount()).isEqualTo(0);
+		assertThat(limiter.getRejectionCount()).isEqualTo(0);
+	}
+
+	private static void report(CardinalityLimiter limiter, String... names) {
+		limiter.startReport();
+		for (String name : names) {
+			limiter.admit(name);
+		}
+		limiter.endReport();
+	}
+}
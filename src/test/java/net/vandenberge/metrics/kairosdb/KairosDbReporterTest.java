@@ -1,11 +1,228 @@
 package net.vandenberge.metrics.kairosdb;
 
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import net.vandenberge.metrics.kairosdb.CardinalityLimiter.OverflowPolicy;
 import net.vandenberge.metrics.kairosdb.KairosDbReporter;
 
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
 
 public class KairosDbReporterTest {
+	private final SocketFactory socketFactory = mock(SocketFactory.class);
+	private final KairosDb kairosDb = new KairosDb(new InetSocketAddress("localhost", 1234), socketFactory);
+	private final Socket socket = mock(Socket.class);
+	private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+	private final Clock clock = mock(Clock.class);
+
+	private final SortedMap<String, Gauge> gauges = new TreeMap<String, Gauge>();
+	private final SortedMap<String, Counter> counters = new TreeMap<String, Counter>();
+	private final SortedMap<String, Histogram> histograms = new TreeMap<String, Histogram>();
+	private final SortedMap<String, Meter> meters = new TreeMap<String, Meter>();
+	private final SortedMap<String, Timer> timers = new TreeMap<String, Timer>();
+
+	@Before
+	public void setUp() throws Exception {
+		when(socket.getOutputStream()).thenReturn(output);
+		when(socketFactory.createSocket(any(InetAddress.class), anyInt())).thenReturn(socket);
+		when(clock.getTime()).thenReturn(1000L);
+	}
+
+	@Test
+	public void reportsEveryMetricWithoutLimits() {
+		KairosDbReporter reporter = KairosDbReporter.forRegistry(new MetricRegistry()).withClock(clock).build(kairosDb);
+		counters.put("a", counter(1));
+		counters.put("b", counter(2));
+
+		reporter.report(gauges, counters, histograms, meters, timers);
+
+		assertThat(output.toString()).isEqualTo("put a.count 1000 1\nput b.count 1000 2\n");
+		assertThat(reporter.getRejectionCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void dropsWholeMetricsOverLimit() {
+		KairosDbReporter reporter = KairosDbReporter.forRegistry(new MetricRegistry()).withClock(clock)
+				.limitMetricsTo(1).build(kairosDb);
+		histograms.put("a", histogram(1, 10, 20));
+		histograms.put("b", histogram(2, 30, 40));
+
+		reporter.report(gauges, counters, histograms, meters, timers);
+
+		String[] lines = output.toString().split("\n");
+		assertThat(lines).hasSize(11);
+		for (String line : lines) {
+			assertThat(line).startsWith("put a.");
+		}
+		assertThat(reporter.getRejectionCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void limitsMetricsPerPrefix() {
+		KairosDbReporter reporter = KairosDbReporter.forRegistry(new MetricRegistry()).withClock(clock)
+				.prefixedWith("app").limitMetricsTo("users", 1).build(kairosDb);
+		counters.put("jvm.threads", counter(7));
+		counters.put("users.1", counter(1));
+		counters.put("users.2", counter(2));
+
+		reporter.report(gauges, counters, histograms, meters, timers);
+
+		assertThat(output.toString()).isEqualTo("put app.jvm.threads.count 1000 7\nput app.users.1.count 1000 1\n");
+		assertThat(reporter.getRejectionCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void aggregatesOverflowPerStatistic() {
+		KairosDbReporter reporter = KairosDbReporter.forRegistry(new MetricRegistry()).withClock(clock)
+				.limitMetricsTo("users", 1).onMetricOverflow(OverflowPolicy.AGGREGATE).build(kairosDb);
+		gauges.put("users.4", gauge(42));
+		gauges.put("users.7", gauge(43));
+		counters.put("users.1", counter(1));
+		counters.put("users.2", counter(2));
+		counters.put("users.3", counter(3));
+		histograms.put("users.5", histogram(4, 10, 20));
+		histograms.put("users.6", histogram(5, 30, 15));
+
+		reporter.report(gauges, counters, histograms, meters, timers);
+
+		String out = output.toString();
+		assertThat(out).startsWith("put users.4 1000 42\n");
+		assertThat(out).contains("put users.other.counters.count 1000 6\n");
+		assertThat(out).contains("put users.other.histograms.count 1000 9\n");
+		assertThat(out).contains("put users.other.histograms.max 1000 30.0\n");
+		assertThat(out).contains("put users.other.histograms.p99 1000 20.0\n");
+		assertThat(out).doesNotContain("users.other.histograms.mean").doesNotContain("put users.other 1000");
+		assertThat(reporter.getRejectionCount()).isEqualTo(6);
+	}
+
+	@Test
+	public void countsRejectedMetricsPerReport() {
+		KairosDbReporter reporter = KairosDbReporter.forRegistry(new MetricRegistry()).withClock(clock)
+				.limitMetricsTo(1).build(kairosDb);
+		counters.put("a", counter(1));
+		counters.put("b", counter(2));
+
+		reporter.report(gauges, counters, histograms, meters, timers);
+		reporter.report(gauges, counters, histograms, meters, timers);
+
+		assertThat(reporter.getRejectionCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void firstReportReusesWarmedUpConnection() throws Exception {
+		KairosDbReporter reporter = KairosDbReporter.forRegistry(new MetricRegistry()).withClock(clock).build(kairosDb);
+		counters.put("a", counter(1));
+		// The first report is due in a second, so the warm-up connects right away.
+		reporter.start(1, TimeUnit.SECONDS);
+		try {
+			verify(socketFactory, timeout(1000)).createSocket(any(InetAddress.class), anyInt());
+			reporter.report(gauges, counters, histograms, meters, timers);
+
+			verify(socketFactory).createSocket(any(InetAddress.class), anyInt());
+			assertThat(output.toString()).isEqualTo("put a.count 1000 1\n");
+		} finally {
+			reporter.stop();
+		}
+	}
+
+	@Test
+	public void doesNotConnectUntilFirstReportIsDue() throws Exception {
+		KairosDbReporter reporter = KairosDbReporter.forRegistry(new MetricRegistry()).withClock(clock).build(kairosDb);
+		reporter.start(1, TimeUnit.HOURS);
+		reporter.stop();
+
+		verify(socketFactory, never()).createSocket(any(InetAddress.class), anyInt());
+	}
+
+	@Test
+	public void stopClosesWarmedUpConnection() throws Exception {
+		KairosDbReporter reporter = KairosDbReporter.forRegistry(new MetricRegistry()).withClock(clock).build(kairosDb);
+		reporter.start(1, TimeUnit.SECONDS);
+		verify(socketFactory, timeout(1000)).createSocket(any(InetAddress.class), anyInt());
+		reporter.stop();
+
+		verify(socket).close();
+	}
+
+	@Test
+	public void stopDoesNotWaitForHangingConnect() throws Exception {
+		final CountDownLatch connecting = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		when(socketFactory.createSocket(any(InetAddress.class), anyInt())).thenAnswer(new Answer<Socket>() {
+			@Override
+			public Socket answer(InvocationOnMock invocation) throws Exception {
+				connecting.countDown();
+				release.await();
+				return socket;
+			}
+		});
+		KairosDbReporter reporter = KairosDbReporter.forRegistry(new MetricRegistry()).withClock(clock).build(kairosDb);
+		reporter.start(1, TimeUnit.SECONDS);
+		connecting.await();
+
+		long start = System.nanoTime();
+		reporter.stop();
+		assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(3));
+
+		// The warm-up closes the connection once it is made.
+		release.countDown();
+		verify(socket, timeout(1000)).close();
+	}
+
+	private static Counter counter(long count) {
+		Counter counter = new Counter();
+		counter.inc(count);
+		return counter;
+	}
+
+	private static Gauge<Integer> gauge(final int value) {
+		return new Gauge<Integer>() {
+			@Override
+			public Integer getValue() {
+				return value;
+			}
+		};
+	}
+
+	private static Histogram histogram(long count, long max, double p99) {
+		Snapshot snapshot = mock(Snapshot.class);
+		when(snapshot.getMax()).thenReturn(max);
+		when(snapshot.get99thPercentile()).thenReturn(p99);
+		Histogram histogram = mock(Histogram.class);
+		when(histogram.getCount()).thenReturn(count);
+		when(histogram.getSnapshot()).thenReturn(snapshot);
+		return histogram;
+	}
 
 	/**
 	 * Tags names and values can contain alphanumeric characters, slash, period, dash and underscore.
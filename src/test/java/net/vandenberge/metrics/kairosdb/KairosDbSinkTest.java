@@ -0,0 +1,183 @@
+package net.vandenberge.metrics.kairosdb;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import net.vandenberge.metrics.kairosdb.KairosDbSink.SaturationPolicy;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KairosDbSinkTest {
+	private final SocketFactory socketFactory = mock(SocketFactory.class);
+	private final InetSocketAddress address = new InetSocketAddress("localhost", 1234);
+	private final KairosDb kairosDb = new KairosDb(address, socketFactory);
+
+	private final Socket socket = mock(Socket.class);
+	private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+	@Before
+	public void setUp() throws Exception {
+		when(socket.getOutputStream()).thenReturn(output);
+		when(socketFactory.createSocket(any(InetAddress.class), anyInt())).thenReturn(socket);
+	}
+
+	@Test
+	public void writesBufferedMeasurementsOnClose() throws Exception {
+		KairosDbSink sink = KairosDbSink.forClient(kairosDb).withStripes(1).build();
+		sink.send("name", 333, 100);
+		sink.send("name woo", 22.33, 100);
+		sink.send("nan", Double.NaN, 100);
+		sink.close();
+
+		assertThat(output.toString()).isEqualTo("put name 100 333\nput name-woo 100 22.33\n");
+		verify(socket).close();
+	}
+
+	@Test
+	public void addsTags() throws Exception {
+		KairosDbSink sink = KairosDbSink.forClient(kairosDb).withStripes(1).withTag("host", "a").withTag("dc", "b").build();
+		sink.send("name", 333, 100);
+		sink.close();
+
+		assertThat(output.toString()).isEqualTo("put name 100 333 host=a dc=b\n");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidTags() {
+		KairosDbSink.forClient(kairosDb).withTag("host", "a b");
+	}
+
+	@Test
+	public void dropsWhenSaturated() throws Exception {
+		KairosDbSink sink = KairosDbSink.forClient(kairosDb).withStripes(1).withStripeCapacity(20).build();
+
+		assertThat(sink.send("name", 1, 100)).isTrue();
+		assertThat(sink.send("name", 2, 100)).isTrue();
+		assertThat(sink.send("name", 3, 100)).isFalse();
+		assertThat(sink.getDroppedCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void acceptsConcurrentProducers() throws Exception {
+		final KairosDbSink sink = KairosDbSink.forClient(kairosDb).withStripeCapacity(256)
+				.onSaturation(SaturationPolicy.BLOCK).build();
+		sink.start();
+
+		final int threads = 8;
+		final int perThread = 1000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perThread; i++) {
+						sink.send("name", i, 100);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		sink.close();
+
+		assertThat(output.toString().split("\n")).hasSize(threads * perThread);
+		assertThat(sink.getDroppedCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void dropsInsteadOfBlockingBeforeStart() throws Exception {
+		KairosDbSink sink = KairosDbSink.forClient(kairosDb).withStripes(1).withStripeCapacity(20)
+				.onSaturation(SaturationPolicy.BLOCK).build();
+
+		assertThat(sink.send("name", 1, 100)).isTrue();
+		assertThat(sink.send("name", 2, 100)).isTrue();
+		assertThat(sink.send("name", 3, 100)).isFalse();
+		assertThat(sink.getDroppedCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void backsOffWhileServerIsDown() throws Exception {
+		when(socketFactory.createSocket(any(InetAddress.class), anyInt())).thenThrow(new ConnectException());
+		KairosDbSink sink = KairosDbSink.forClient(kairosDb).withFlushInterval(1, TimeUnit.MILLISECONDS).build();
+		sink.start();
+		sink.send("name", 1, 100);
+		Thread.sleep(500);
+		sink.close();
+
+		// Warm-up, the first drain, retries after 100, 200 and maybe 400 ms,
+		// and the final attempt on close
+		verify(socketFactory, atLeast(3)).createSocket(any(InetAddress.class), anyInt());
+		verify(socketFactory, atMost(6)).createSocket(any(InetAddress.class), anyInt());
+		assertThat(sink.getDroppedCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void blocksForAtMostMaxBlockTime() throws Exception {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		when(socket.getOutputStream()).thenReturn(new OutputStream() {
+			@Override
+			public void write(int b) {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				writing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		KairosDbSink sink = KairosDbSink.forClient(kairosDb).withStripes(1).withStripeCapacity(20)
+				.withFlushInterval(1, TimeUnit.MILLISECONDS).onSaturation(SaturationPolicy.BLOCK)
+				.withMaxBlockTime(50, TimeUnit.MILLISECONDS).build();
+		sink.start();
+		try {
+			sink.send("name", 1, 100);
+			// The I/O thread is now stuck writing the first line.
+			writing.await();
+			sink.send("name", 2, 100);
+			sink.send("name", 3, 100);
+
+			long start = System.nanoTime();
+			assertThat(sink.send("name", 4, 100)).isFalse();
+			assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+			assertThat(sink.getDroppedCount()).isEqualTo(1);
+		} finally {
+			release.countDown();
+			sink.close();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void doesNotStartTwice() throws Exception {
+		KairosDbSink sink = KairosDbSink.forClient(kairosDb).build();
+		try {
+			sink.start();
+			sink.start();
+		} finally {
+			sink.close();
+		}
+	}
+}
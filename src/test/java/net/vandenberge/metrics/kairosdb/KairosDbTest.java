@@ -5,14 +5,18 @@ import net.vandenberge.metrics.kairosdb.KairosDb;
 import org.fest.assertions.api.Assertions;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 import javax.net.SocketFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.fest.assertions.api.Fail.failBecauseExceptionWasNotThrown;
@@ -22,7 +26,7 @@ import static org.mockito.Mockito.*;
 
 public class KairosDbTest {
     private final SocketFactory socketFactory = mock(SocketFactory.class);
-    private final InetSocketAddress address = new InetSocketAddress("example.com", 1234);
+    private final InetSocketAddress address = new InetSocketAddress("localhost", 1234);
     private final KairosDb kairosDb = new KairosDb(address, socketFactory);
 
     private final Socket socket = mock(Socket.class);
@@ -44,6 +48,76 @@ public class KairosDbTest {
         verify(socketFactory).createSocket(address.getAddress(), address.getPort());
     }
 
+    @Test
+    public void connectsWithTimeout() throws Exception {
+        when(socketFactory.createSocket()).thenReturn(socket);
+        kairosDb.setConnectTimeout(2, TimeUnit.SECONDS);
+        kairosDb.connect();
+
+        verify(socket).connect(new InetSocketAddress(address.getAddress(), address.getPort()), 2000);
+    }
+
+    @Test
+    public void warmUpConnectsWithoutSending() throws Exception {
+        kairosDb.warmUp();
+        kairosDb.warmUp();
+
+        verify(socketFactory).createSocket(address.getAddress(), address.getPort());
+        assertThat(output.toString()).isEqualTo("");
+    }
+
+    @Test
+    public void triesNextAddressWhenConnectionIsRefused() throws Exception {
+        InetAddress first = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+        InetAddress second = InetAddress.getByAddress(new byte[] { 10, 0, 0, 2 });
+        KairosDb kairosDb = withDns(first, second);
+        Socket refused = mock(Socket.class);
+        doThrow(new ConnectException()).when(refused).connect(any(SocketAddress.class), anyInt());
+        when(socketFactory.createSocket()).thenReturn(refused, socket, socket);
+
+        kairosDb.connect();
+        kairosDb.close();
+        kairosDb.connect();
+
+        // Multiple addresses get a connect timeout, so one that does not
+        // respond does not hold up the others.
+        InOrder inOrder = inOrder(refused, socket);
+        inOrder.verify(refused).connect(new InetSocketAddress(first, 1234), 5000);
+        inOrder.verify(socket, times(2)).connect(new InetSocketAddress(second, 1234), 5000);
+        verify(socketFactory, never()).createSocket(any(InetAddress.class), anyInt());
+    }
+
+    @Test
+    public void resolvesAgainWhenCachedAddressesFail() throws Exception {
+        InetAddress old = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+        InetAddress moved = InetAddress.getByAddress(new byte[] { 10, 0, 0, 2 });
+        final InetAddress[][] dns = { { moved } };
+        AddressResolver resolver = new AddressResolver(new InetSocketAddress(old, 1234), TimeUnit.HOURS.toNanos(1)) {
+            @Override
+            InetAddress[] lookup(String host) {
+                return dns[0];
+            }
+        };
+        KairosDb kairosDb = new KairosDb(address, socketFactory, KairosDb.UTF_8, resolver);
+        when(socketFactory.createSocket(old, 1234)).thenThrow(new ConnectException());
+        when(socketFactory.createSocket(moved, 1234)).thenReturn(socket);
+
+        kairosDb.connect();
+
+        verify(socketFactory).createSocket(moved, 1234);
+    }
+
+    private KairosDb withDns(final InetAddress... addresses) {
+        AddressResolver resolver = new AddressResolver(InetSocketAddress.createUnresolved("kairosdb", 1234),
+                TimeUnit.HOURS.toNanos(1)) {
+            @Override
+            InetAddress[] lookup(String host) {
+                return addresses.clone();
+            }
+        };
+        return new KairosDb(address, socketFactory, KairosDb.UTF_8, resolver);
+    }
+
     @Test
     public void disconnect() throws Exception {
         kairosDb.connect();
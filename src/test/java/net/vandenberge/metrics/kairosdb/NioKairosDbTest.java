@@ -0,0 +1,127 @@
+package net.vandenberge.metrics.kairosdb;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Fail.failBecauseExceptionWasNotThrown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NioKairosDbTest {
+	private ServerSocket server;
+	private NioKairosDb kairosDb;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		kairosDb = new NioKairosDb(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		kairosDb.close();
+		server.close();
+	}
+
+	@Test
+	public void writesValuesOnClose() throws Exception {
+		Map<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("host", "a");
+		kairosDb.setTags(tags);
+		kairosDb.connect();
+		kairosDb.send("name woo", 333, 100);
+		kairosDb.send("name", 22.33, 100);
+		kairosDb.send("name", Double.NaN, 100);
+		kairosDb.close();
+
+		assertThat(receive()).isEqualTo("put name-woo 100 333 host=a\nput name 100 22.33 host=a\n");
+	}
+
+	@Test
+	public void writesBatchesLargerThanOneBuffer() throws Exception {
+		kairosDb.connect();
+		final int count = 100000;
+		final StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			expected.append("put name 100 ").append(i).append('\n');
+		}
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < count; i++) {
+						kairosDb.send("name", i, 100);
+					}
+					kairosDb.close();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		sender.start();
+
+		assertThat(receive()).isEqualTo(expected.toString());
+		sender.join();
+	}
+
+	@Test
+	public void writesFullBuffersBeforeFlush() throws Exception {
+		kairosDb.connect();
+		Socket socket = server.accept();
+		try {
+			socket.setSoTimeout(5000);
+			// 72K of lines, more than one 64K buffer
+			for (int i = 1000; i < 5000; i++) {
+				kairosDb.send("name", i, 100);
+			}
+
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[64 * 1024];
+			int received = 0;
+			while (received < buffer.length) {
+				received += in.read(buffer, received, buffer.length - received);
+			}
+			assertThat(new String(buffer, 0, 18, "UTF-8")).isEqualTo("put name 100 1000\n");
+			kairosDb.close();
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void doesNotAllowDoubleConnections() throws Exception {
+		kairosDb.connect();
+		try {
+			kairosDb.connect();
+			failBecauseExceptionWasNotThrown(IllegalStateException.class);
+		} catch (IllegalStateException e) {
+			assertThat(e.getMessage()).isEqualTo("Already connected");
+		}
+	}
+
+	private String receive() throws IOException {
+		Socket socket = server.accept();
+		try {
+			InputStream in = socket.getInputStream();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toString("UTF-8");
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package net.vandenberge.metrics.kairosdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the throughput and sending-thread CPU cost of {@link KairosDb} and
+ * {@link NioKairosDb} against a local server that discards everything it
+ * receives. Not a unit test; run with
+ *
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes:&lt;metrics-core and slf4j jars&gt; net.vandenberge.metrics.kairosdb.TransportBenchmark [points]
+ * </pre>
+ */
+public class TransportBenchmark {
+
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+
+	public static void main(String[] args) throws Exception {
+		int points = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		AtomicLong received = new AtomicLong();
+		startDiscardServer(server, received);
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+
+		Map<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("host", "server-01");
+		tags.put("env", "production");
+
+		KairosDb stream = new KairosDb(address);
+		stream.setTags(tags);
+		KairosDb nio = new NioKairosDb(address);
+		nio.setTags(tags);
+
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			run(stream, points);
+			run(nio, points);
+		}
+		report("KairosDb", stream, points, received);
+		report("NioKairosDb", nio, points, received);
+		server.close();
+	}
+
+	private static void report(String label, KairosDb client, int points, AtomicLong received) throws IOException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long bytesBefore = received.get();
+		long cpuBefore = threads.getCurrentThreadCpuTime();
+		long wallBefore = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++) {
+			run(client, points);
+		}
+		long wall = System.nanoTime() - wallBefore;
+		long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+		// The server may still be reading the tail of the last round.
+		long bytes = received.get() - bytesBefore;
+
+		double millions = ROUNDS * points / 1e6;
+		System.out.printf("%-12s %8.1f MB/s %10.1f ms CPU per million points%n", label, bytes / 1e6 / (wall / 1e9),
+				cpu / 1e6 / millions);
+	}
+
+	/**
+	 * Sends the given number of points in one connection, like a reporter
+	 * cycle does.
+	 */
+	private static void run(KairosDb client, int points) throws IOException {
+		client.connect();
+		for (int i = 0; i < points; i++) {
+			client.send("app.requests.latency.p99", i * 0.25, 1400000000000L + i);
+		}
+		client.close();
+	}
+
+	private static void startDiscardServer(final ServerSocket server, final AtomicLong received) {
+		Thread thread = new Thread("discard-server") {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[64 * 1024];
+				while (!server.isClosed()) {
+					try {
+						Socket socket = server.accept();
+						InputStream in = socket.getInputStream();
+						int read;
+						while ((read = in.read(buffer)) != -1) {
+							received.addAndGet(read);
+						}
+						socket.close();
+					} catch (IOException e) {
+						// Server closed
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+}